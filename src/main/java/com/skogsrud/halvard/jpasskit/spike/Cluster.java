@@ -0,0 +1,164 @@
+package com.skogsrud.halvard.jpasskit.spike;
+
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Partitions device registrations across nodes by deviceLibraryIdentifier and sends requests to other nodes.
+ * A single node cluster owns every deviceLibraryIdentifier.
+ */
+class Cluster {
+    private static final Logger LOG = LoggerFactory.getLogger(Cluster.class);
+    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+    /**
+     * Carries the shared cluster secret. Requests between nodes, and requests to the cluster endpoints, must have it.
+     */
+    static final String SECRET_HEADER = "x-cluster-secret";
+    /**
+     * Identifies the node that sent a request, so it is not passed on to the other nodes again.
+     */
+    static final String FORWARDED_HEADER = "x-cluster-forwarded";
+    /**
+     * Tells clients which node owns the deviceLibraryIdentifier when redirecting.
+     */
+    static final String OWNER_HEADER = "x-cluster-owner";
+
+    private final String nodeUrl;
+    private final String secret;
+    private final OkHttpClient httpClient = new OkHttpClient();
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "cluster");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile ConsistentHashRing ring;
+
+    Cluster(String nodeUrl, Collection<String> nodeUrls, String secret) {
+        this.nodeUrl = normaliseNodeUrl(nodeUrl);
+        this.secret = secret;
+        setNodes(nodeUrls);
+        if (!ring.getNodes().contains(this.nodeUrl)) {
+            throw new IllegalArgumentException("CLUSTER_NODE_URL=[" + this.nodeUrl + "] is not one of CLUSTER_NODES=" + ring.getNodes());
+        }
+        if (ring.getNodes().size() > 1 && secret == null) {
+            throw new IllegalArgumentException("CLUSTER_SECRET is required when CLUSTER_NODES has more than one node");
+        }
+    }
+
+    /**
+     * Reduce a node URL to scheme, host, port and path without a trailing slash, so equivalent URLs compare equal.
+     */
+    static String normaliseNodeUrl(String nodeUrl) {
+        HttpUrl url = HttpUrl.parse(nodeUrl.trim());
+        if (url == null) {
+            throw new IllegalArgumentException("Invalid node URL=[" + nodeUrl + "]");
+        }
+        return url.scheme() + "://" + url.host() + ":" + url.port() + url.encodedPath().replaceAll("/+$", "");
+    }
+
+    String getNodeUrl() {
+        return nodeUrl;
+    }
+
+    Set<String> getNodes() {
+        return ring.getNodes();
+    }
+
+    List<String> getPeers() {
+        return ring.getNodes().stream().filter(node -> !node.equals(nodeUrl)).collect(Collectors.toList());
+    }
+
+    /**
+     * Replace the cluster membership. Registrations this node no longer owns should be handed off afterwards.
+     */
+    void setNodes(Collection<String> nodeUrls) {
+        ring = new ConsistentHashRing(nodeUrls.stream().map(Cluster::normaliseNodeUrl).collect(Collectors.toList()));
+        LOG.info("Cluster nodes=[{}] nodeUrl=[{}]", ring.getNodes(), nodeUrl);
+    }
+
+    String ownerOf(String deviceLibraryIdentifier) {
+        return ring.nodeFor(deviceLibraryIdentifier);
+    }
+
+    boolean owns(String deviceLibraryIdentifier) {
+        return nodeUrl.equals(ownerOf(deviceLibraryIdentifier));
+    }
+
+    /**
+     * Check the secret sent with a request. Always false if no secret is configured.
+     */
+    boolean isFromCluster(String requestSecret) {
+        return secret != null && requestSecret != null
+            && MessageDigest.isEqual(secret.getBytes(StandardCharsets.UTF_8), requestSecret.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Send a request to another node and return its response. The caller must read or close the response body.
+     */
+    Response send(String targetNodeUrl, String method, String pathAndQuery, String authorization, String jsonBody) throws IOException {
+        return send(httpClient, targetNodeUrl, method, pathAndQuery, authorization, jsonBody);
+    }
+
+    /**
+     * Send the same request to the given nodes in parallel. The result maps each node to its response body, or to null
+     * if the request failed. Failures are logged, not thrown.
+     */
+    CompletableFuture<Map<String, String>> sendToAll(Collection<String> targetNodeUrls, String method, String pathAndQuery, String jsonBody, long readTimeoutSeconds) {
+        OkHttpClient fanOutHttpClient = httpClient.newBuilder().readTimeout(readTimeoutSeconds, TimeUnit.SECONDS).build();
+        Map<String, CompletableFuture<String>> futures = new HashMap<>();
+        targetNodeUrls.stream()
+            .filter(targetNodeUrl -> !targetNodeUrl.equals(nodeUrl))
+            .forEach(targetNodeUrl -> futures.put(targetNodeUrl, CompletableFuture.supplyAsync(() -> {
+                try {
+                    Response response = send(fanOutHttpClient, targetNodeUrl, method, pathAndQuery, null, jsonBody);
+                    String body = response.body().string();
+                    if (response.isSuccessful()) {
+                        return body;
+                    }
+                    LOG.warn("Node [{}] returned statusCode=[{}] for {} {}", targetNodeUrl, response.code(), method, pathAndQuery);
+                } catch (IOException e) {
+                    LOG.warn("Error when sending {} {} to node [{}]", method, pathAndQuery, targetNodeUrl, e);
+                }
+                return null;
+            }, executor)));
+        return CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            Map<String, String> responses = new HashMap<>();
+            futures.forEach((targetNodeUrl, future) -> responses.put(targetNodeUrl, future.join()));
+            return responses;
+        });
+    }
+
+    private Response send(OkHttpClient client, String targetNodeUrl, String method, String pathAndQuery, String authorization, String jsonBody) throws IOException {
+        Request.Builder requestBuilder = new Request.Builder()
+            .url(targetNodeUrl + pathAndQuery)
+            .header(FORWARDED_HEADER, nodeUrl)
+            .method(method, jsonBody == null ? null : RequestBody.create(JSON, jsonBody));
+        if (secret != null) {
+            requestBuilder.header(SECRET_HEADER, secret);
+        }
+        if (authorization != null) {
+            requestBuilder.header("authorization", authorization);
+        }
+        return client.newCall(requestBuilder.build()).execute();
+    }
+}
@@ -0,0 +1,86 @@
+package com.skogsrud.halvard.jpasskit.spike;
+
+import de.brendamour.jpasskit.signing.PKSigningException;
+import de.brendamour.jpasskit.signing.PKSigningInformation;
+import org.bouncycastle.cert.jcajce.JcaCertStore;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedDataGenerator;
+import org.bouncycastle.cms.jcajce.JcaSignerInfoGeneratorBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+
+import java.io.IOException;
+import java.security.PrivateKey;
+import java.security.cert.CertificateEncodingException;
+import java.util.Arrays;
+
+/**
+ * Signs using a CMS generator that is built once per thread and reused for every subsequent signature.
+ * The certificate chain is encoded once and shared between all threads.
+ */
+class CmsPassSigner implements PassSigner {
+    private final PKSigningInformation signingInformation;
+    private final String signatureAlgorithm;
+    private final JcaCertStore certificateStore;
+    private final ThreadLocal<CMSSignedDataGenerator> generator = ThreadLocal.withInitial(this::createGenerator);
+
+    CmsPassSigner(PKSigningInformation signingInformation) throws PKSigningException {
+        if (signingInformation == null || !signingInformation.isValid()) {
+            throw new IllegalArgumentException("Invalid signing information");
+        }
+        this.signingInformation = signingInformation;
+        signatureAlgorithm = signatureAlgorithm(signingInformation.getSigningPrivateKey());
+        try {
+            certificateStore = new JcaCertStore(Arrays.asList(signingInformation.getAppleWWDRCACert(), signingInformation.getSigningCert()));
+            generator.get(); // fail fast on an unusable key or certificate instead of on the first request
+        } catch (CertificateEncodingException | IllegalStateException e) {
+            throw new PKSigningException("Error when preparing CMS signer", e);
+        }
+    }
+
+    @Override
+    public byte[] sign(byte[] manifestJson) throws PKSigningException {
+        try {
+            return generator.get().generate(new CMSProcessableByteArray(manifestJson), false).getEncoded();
+        } catch (CMSException | IOException e) {
+            throw new PKSigningException("Error when signing manifest", e);
+        }
+    }
+
+    @Override
+    public PKSigningInformation getSigningInformation() {
+        return signingInformation;
+    }
+
+    /**
+     * Apple issues RSA keys for Pass Type ID certificates, but EC keys are supported for other signing certificates.
+     */
+    static String signatureAlgorithm(PrivateKey privateKey) {
+        switch (privateKey.getAlgorithm()) {
+            case "RSA":
+                return "SHA256withRSA";
+            case "EC":
+            case "ECDSA":
+                return "SHA256withECDSA";
+            default:
+                throw new IllegalArgumentException("Unsupported private key algorithm=[" + privateKey.getAlgorithm() + "]");
+        }
+    }
+
+    private CMSSignedDataGenerator createGenerator() {
+        try {
+            ContentSigner contentSigner = new JcaContentSignerBuilder(signatureAlgorithm).build(signingInformation.getSigningPrivateKey());
+            CMSSignedDataGenerator cmsSignedDataGenerator = new CMSSignedDataGenerator();
+            // the default signed attributes include the signing time, which Wallet requires
+            cmsSignedDataGenerator.addSignerInfoGenerator(new JcaSignerInfoGeneratorBuilder(new JcaDigestCalculatorProviderBuilder().build())
+                .build(contentSigner, signingInformation.getSigningCert()));
+            cmsSignedDataGenerator.addCertificates(certificateStore);
+            return cmsSignedDataGenerator;
+        } catch (OperatorCreationException | CertificateEncodingException | CMSException e) {
+            throw new IllegalStateException("Error when creating CMS generator", e);
+        }
+    }
+}
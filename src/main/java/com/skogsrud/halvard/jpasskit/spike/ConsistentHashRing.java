@@ -0,0 +1,49 @@
+package com.skogsrud.halvard.jpasskit.spike;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Immutable consistent hash ring mapping keys to node URLs.
+ * Each node is placed on the ring many times so keys spread evenly, and adding or removing a node only moves the keys
+ * that node gains or loses.
+ */
+class ConsistentHashRing {
+    private static final int VIRTUAL_NODES_PER_NODE = 128;
+
+    private final Set<String> nodes;
+    private final NavigableMap<Long, String> ring = new TreeMap<>();
+
+    ConsistentHashRing(Collection<String> nodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("Hash ring needs at least one node");
+        }
+        this.nodes = Collections.unmodifiableSet(new TreeSet<>(nodes));
+        this.nodes.forEach(node -> {
+            for (int i = 0; i < VIRTUAL_NODES_PER_NODE; i++) {
+                ring.put(hash(node + "#" + i), node);
+            }
+        });
+    }
+
+    Set<String> getNodes() {
+        return nodes;
+    }
+
+    String nodeFor(String key) {
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash(key));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    private static long hash(String value) {
+        return ByteBuffer.wrap(DigestUtils.md5(value)).getLong();
+    }
+}
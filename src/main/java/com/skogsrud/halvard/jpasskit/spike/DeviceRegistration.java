@@ -1,16 +1,29 @@
 package com.skogsrud.halvard.jpasskit.spike;
 
 class DeviceRegistration {
+    private final String username;
     private final String deviceLibraryIdentifier;
     private final String serialNumber;
     private final String pushToken;
 
-    public DeviceRegistration(String deviceLibraryIdentifier, String serialNumber, String pushToken) {
+    public DeviceRegistration(String username, String deviceLibraryIdentifier, String serialNumber, String pushToken) {
+        this.username = username;
         this.deviceLibraryIdentifier = deviceLibraryIdentifier;
         this.serialNumber = serialNumber;
         this.pushToken = pushToken;
     }
 
+    /**
+     * Registrations are unique per device and pass, since one username can have passes on several devices.
+     */
+    static String key(String deviceLibraryIdentifier, String serialNumber) {
+        return deviceLibraryIdentifier + "/" + serialNumber;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
     public String getDeviceLibraryIdentifier() {
         return deviceLibraryIdentifier;
     }
@@ -0,0 +1,151 @@
+package com.skogsrud.halvard.jpasskit.spike;
+
+import de.brendamour.jpasskit.signing.PKSigningException;
+import de.brendamour.jpasskit.signing.PKSigningInformation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.stream.Collectors;
+
+/**
+ * Batches signatures requested concurrently and signs each batch in parallel on a fork-join pool, with one thread per
+ * core. Request threads queue their manifests, and a single batcher thread takes everything queued while the previous
+ * batch was signed as the next batch. Each pool thread keeps its own warmed signer when the delegate is a
+ * {@link CmsPassSigner}.
+ */
+class ForkJoinPassSigner implements PassSigner {
+    private static final int MAX_BATCH_SIZE = 256;
+
+    private final PassSigner delegate;
+    private final ForkJoinPool pool;
+    private final BlockingQueue<PendingSignature> pendingSignatures = new LinkedBlockingQueue<>();
+    private final Thread batcher;
+
+    ForkJoinPassSigner(PassSigner delegate) {
+        this(delegate, Runtime.getRuntime().availableProcessors());
+    }
+
+    ForkJoinPassSigner(PassSigner delegate, int parallelism) {
+        this.delegate = delegate;
+        pool = new ForkJoinPool(parallelism);
+        batcher = new Thread(this::signBatches, "pass-signer-batcher");
+        batcher.setDaemon(true);
+        batcher.start();
+    }
+
+    @Override
+    public byte[] sign(byte[] manifestJson) throws PKSigningException {
+        return await(queue(manifestJson));
+    }
+
+    @Override
+    public List<byte[]> signAll(List<byte[]> manifestJsons) throws PKSigningException {
+        List<Future<byte[]>> futures = new ArrayList<>(manifestJsons.size());
+        for (byte[] manifestJson : manifestJsons) {
+            futures.add(queue(manifestJson));
+        }
+        List<byte[]> signatures = new ArrayList<>(futures.size());
+        for (Future<byte[]> future : futures) {
+            signatures.add(await(future));
+        }
+        return signatures;
+    }
+
+    @Override
+    public PKSigningInformation getSigningInformation() {
+        return delegate.getSigningInformation();
+    }
+
+    /**
+     * Stop the batcher and the pool. Signatures still queued fail with a {@link PKSigningException}.
+     */
+    @Override
+    public void close() {
+        pool.shutdown();
+        batcher.interrupt();
+        delegate.close();
+    }
+
+    private Future<byte[]> queue(byte[] manifestJson) throws PKSigningException {
+        PendingSignature pendingSignature = new PendingSignature(manifestJson);
+        pendingSignatures.add(pendingSignature);
+        if (pool.isShutdown() && pendingSignatures.remove(pendingSignature)) {
+            throw new PKSigningException("Pass signer is closed", new IllegalStateException());
+        }
+        return pendingSignature.signature;
+    }
+
+    private void signBatches() {
+        List<PendingSignature> batch = new ArrayList<>();
+        try {
+            while (true) {
+                batch.add(pendingSignatures.take());
+                pendingSignatures.drainTo(batch, MAX_BATCH_SIZE - 1);
+                signBatch(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            pendingSignatures.drainTo(batch);
+            PKSigningException closed = new PKSigningException("Pass signer is closed", e);
+            batch.forEach(pendingSignature -> pendingSignature.signature.completeExceptionally(closed));
+        }
+    }
+
+    private void signBatch(List<PendingSignature> batch) throws InterruptedException {
+        List<Callable<Void>> tasks = batch.stream()
+            .map(pendingSignature -> (Callable<Void>) () -> {
+                try {
+                    pendingSignature.signature.complete(delegate.sign(pendingSignature.manifestJson));
+                } catch (Exception | Error e) {
+                    pendingSignature.signature.completeExceptionally(e);
+                }
+                return null;
+            })
+            .collect(Collectors.toList());
+        try {
+            pool.invokeAll(tasks);
+        } catch (RuntimeException e) {
+            batch.forEach(pendingSignature -> pendingSignature.signature.completeExceptionally(e));
+        }
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedException();
+        }
+    }
+
+    private byte[] await(Future<byte[]> future) throws PKSigningException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PKSigningException("Interrupted when waiting for signature", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof PKSigningException) {
+                throw (PKSigningException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new PKSigningException("Error when signing manifest", (Exception) cause);
+        }
+    }
+
+    private static class PendingSignature {
+        private final byte[] manifestJson;
+        private final CompletableFuture<byte[]> signature = new CompletableFuture<>();
+
+        private PendingSignature(byte[] manifestJson) {
+            this.manifestJson = manifestJson;
+        }
+    }
+}
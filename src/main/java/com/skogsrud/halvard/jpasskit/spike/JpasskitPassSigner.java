@@ -0,0 +1,30 @@
+package com.skogsrud.halvard.jpasskit.spike;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.brendamour.jpasskit.signing.PKInMemorySigningUtil;
+import de.brendamour.jpasskit.signing.PKSigningException;
+import de.brendamour.jpasskit.signing.PKSigningInformation;
+
+/**
+ * Signs using jpasskit, which rebuilds the CMS generator, certificate store and signer info for every signature.
+ * Kept as a baseline for comparing signing throughput.
+ */
+class JpasskitPassSigner implements PassSigner {
+    private final PKSigningInformation signingInformation;
+    private final PKInMemorySigningUtil signingUtil;
+
+    JpasskitPassSigner(PKSigningInformation signingInformation) {
+        this.signingInformation = signingInformation;
+        signingUtil = new PKInMemorySigningUtil(new ObjectMapper());
+    }
+
+    @Override
+    public byte[] sign(byte[] manifestJson) throws PKSigningException {
+        return signingUtil.signManifestFile(manifestJson, signingInformation);
+    }
+
+    @Override
+    public PKSigningInformation getSigningInformation() {
+        return signingInformation;
+    }
+}
@@ -14,6 +14,7 @@ import com.relayrides.pushy.apns.PushNotificationResponse;
 import com.relayrides.pushy.apns.util.ApnsPayloadBuilder;
 import com.relayrides.pushy.apns.util.SimpleApnsPushNotification;
 import com.relayrides.pushy.apns.util.TokenUtil;
+import de.brendamour.jpasskit.signing.PKSigningInformation;
 import eu.bitwalker.useragentutils.Browser;
 import eu.bitwalker.useragentutils.DeviceType;
 import eu.bitwalker.useragentutils.OperatingSystem;
@@ -46,11 +47,14 @@ import java.util.Arrays;
 import java.util.Base64;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import java.util.zip.GZIPOutputStream;
 
@@ -65,15 +69,26 @@ public class Main {
         "TEAM_IDENTIFIER"
     );
     private static final List<String> OPTIONAL_ENVIRONMENT_VARIABLE_NAMES = Arrays.asList(
+        "CLUSTER_NODES",
+        "CLUSTER_NODE_URL",
+        "CLUSTER_ROUTING",
+        "CLUSTER_SECRET",
+        "PASS_SIGNER",
         "PORT",
         "WEB_SERVICE_URL"
     );
+    // peers push their updates to APNs one notification at a time, so a large shard takes a while
+    private static final long UPDATE_TIMEOUT_SECONDS = 600;
+    private static final long MEMBERSHIP_TIMEOUT_SECONDS = 120;
 
     private final Map<String, String> environmentVariables;
     private final ObjectMapper objectMapper = new ObjectMapper();
     private final MustacheTemplateEngine templateEngine = new MustacheTemplateEngine();
     private final int port;
-    private final ConcurrentHashMap<String, DeviceRegistration> usernameToRegistrationsMap = new ConcurrentHashMap<>();
+    private final PassSigner passSigner;
+    private final Cluster cluster;
+    private final boolean redirectToClusterOwner;
+    private final RegistrationShard registrationShard;
 
     /**
      * Main application entry point.
@@ -83,8 +98,17 @@ public class Main {
     }
 
     Main(Map<String, String> environmentVariables) throws Exception {
+        this(environmentVariables, createPassSigner(environmentVariables));
+    }
+
+    Main(Map<String, String> environmentVariables, PassSigner passSigner) throws Exception {
         this.environmentVariables = environmentVariables;
+        this.passSigner = passSigner;
         port = setPort(this.environmentVariables);
+        Runtime.getRuntime().addShutdownHook(new Thread(passSigner::close));
+        cluster = createCluster(this.environmentVariables, port);
+        redirectToClusterOwner = "redirect".equals(this.environmentVariables.get("CLUSTER_ROUTING"));
+        registrationShard = new RegistrationShard(cluster, objectMapper);
         logExceptions();
         logRequests();
         logResponses();
@@ -94,7 +118,7 @@ public class Main {
         logBaseUrl(port);
     }
 
-    private void run() throws Exception {
+    void run() throws Exception {
         redirect.get("/", "/pass");
 
         get("/hello.txt", (request, response) -> {
@@ -171,6 +195,36 @@ public class Main {
             return "";
         });
 
+        /**
+         * Registrations are partitioned by deviceLibraryIdentifier. Requests for a deviceLibraryIdentifier owned by
+         * another node are forwarded to that node, or redirected to it if 'CLUSTER_ROUTING' is 'redirect'.
+         * Requests from other nodes are handled here, so nodes with different views of the membership cannot loop.
+         * A node with a stale view of the membership may forward to a node that no longer owns the deviceLibraryIdentifier,
+         * so a registration stored that way is handed off to its owner straight away.
+         */
+        before("/wallet/v1/devices/:deviceLibraryIdentifier/*", (request, response) -> {
+            String deviceLibraryIdentifier = request.params(":deviceLibraryIdentifier");
+            if (isFromCluster(request) || cluster.owns(deviceLibraryIdentifier)) {
+                return;
+            }
+            String owner = cluster.ownerOf(deviceLibraryIdentifier);
+            String pathAndQuery = request.queryParams().isEmpty() ? request.uri() : request.uri() + "?" + request.raw().getQueryString();
+            if (redirectToClusterOwner) {
+                LOG.info("Redirecting deviceLibraryIdentifier=[{}] to owner=[{}]", deviceLibraryIdentifier, owner);
+                response.header("location", owner + pathAndQuery);
+                response.header(Cluster.OWNER_HEADER, owner);
+                halt(307);
+            } else {
+                LOG.info("Forwarding deviceLibraryIdentifier=[{}] to owner=[{}]", deviceLibraryIdentifier, owner);
+                String body = "POST".equals(request.requestMethod()) ? request.body() : null;
+                okhttp3.Response ownerResponse = cluster.send(owner, request.requestMethod(), pathAndQuery, request.headers("authorization"), body);
+                if (ownerResponse.header("content-type") != null) {
+                    response.type(ownerResponse.header("content-type"));
+                }
+                halt(ownerResponse.code(), ownerResponse.body().string());
+            }
+        });
+
         /**
          * Registering a Device to Receive Push Notifications for a Pass:
          * https://developer.apple.com/library/ios/documentation/PassKit/Reference/PassKit_WebService/WebService.html#//apple_ref/doc/uid/TP40011988-CH0-SW2
@@ -187,12 +241,12 @@ public class Main {
             });
             String pushToken = pushTokenMap.get("pushToken");
             LOG.debug("Received deviceLibraryIdentifier=[{}] serialNumber=[{}] pushToken=[{}] username=[{}]", deviceLibraryIdentifier, serialNumber, pushToken, username);
-            DeviceRegistration existingRegistation = usernameToRegistrationsMap.get("username");
-            int statusCode = 200; // already registered
-            if (existingRegistation == null || !existingRegistation.getSerialNumber().equals(serialNumber)) {
-                usernameToRegistrationsMap.put(username, new DeviceRegistration(deviceLibraryIdentifier, serialNumber, pushToken));
-                statusCode = 201; // new registration
+            boolean newRegistration = registrationShard.register(new DeviceRegistration(username, deviceLibraryIdentifier, serialNumber, pushToken));
+            if (!cluster.owns(deviceLibraryIdentifier)) {
+                LOG.info("Handing off deviceLibraryIdentifier=[{}] forwarded by node [{}] to owner=[{}]", deviceLibraryIdentifier, request.headers(Cluster.FORWARDED_HEADER), cluster.ownerOf(deviceLibraryIdentifier));
+                registrationShard.handOff();
             }
+            int statusCode = newRegistration ? 201 : 200;
             response.status(statusCode);
             LOG.info("Returning statusCode=[{}] for deviceLibraryIdentifier=[{}] serialNumber=[{}] pushToken=[{}] username=[{}]", statusCode, deviceLibraryIdentifier, serialNumber, pushToken, username);
             return "";
@@ -232,7 +286,7 @@ public class Main {
                 return "";
             }
             LOG.info("Returning pass for username=[{}]", username);
-            byte[] passAsByteArray = new Pass().createPassAsByteArray(environmentVariables, port);
+            byte[] passAsByteArray = new Pass(passSigner).createPassAsByteArray(environmentVariables, port);
             response.type("application/vnd.apple.pkpass");
             response.header("content-disposition", "attachment; filename=\"appointment.pkpass\"");
             response.header("content-length", "" + passAsByteArray.length);
@@ -258,7 +312,7 @@ public class Main {
                 response.status(401);
                 return "";
             }
-            usernameToRegistrationsMap.remove(username);
+            registrationShard.unregister(deviceLibraryIdentifier, serialNumber);
             return "";
         });
 
@@ -271,60 +325,150 @@ public class Main {
             return "";
         });
 
+        /**
+         * Push updates for this node's registrations, and in parallel ask every other node to do the same for theirs.
+         * Returns the number of accepted push notifications per node, or "failed" for nodes that did not respond.
+         */
         get("/update", (request, response) -> {
-            InputStream base64EncodedPrivateKeyAndCertificatePkcs12AsStream = new ByteArrayInputStream(environmentVariables.get("PRIVATE_KEY_P12_BASE64").getBytes(StandardCharsets.UTF_8));
-            Base64InputStream privateKeyAndCertificatePkcs12AsStream = new Base64InputStream(base64EncodedPrivateKeyAndCertificatePkcs12AsStream);
-            String privateKeyPassphrase = environmentVariables.get("PRIVATE_KEY_PASSPHRASE");
-
-            ApnsClient<SimpleApnsPushNotification> apnsClient = new ApnsClient<>(privateKeyAndCertificatePkcs12AsStream, privateKeyPassphrase);
-//            Future<Void> connectFuture = apnsClient.connect(ApnsClient.DEVELOPMENT_APNS_HOST);
-            Future<Void> connectFuture = apnsClient.connect(ApnsClient.PRODUCTION_APNS_HOST);
-            connectFuture.await();
-
-            List<String> entriesToRemove = new ArrayList<>();
-            usernameToRegistrationsMap.entrySet().forEach(deviceRegistrationEntry -> {
-                String username = deviceRegistrationEntry.getKey();
-                String pushToken = deviceRegistrationEntry.getValue().getPushToken();
-                LOG.info("Pushing update for username=[{}] pushToken=[{}] passTypeIdentifier", username, pushToken, environmentVariables.get("PASS_TYPE_IDENTIFIER"));
-
-                ApnsPayloadBuilder payloadBuilder = new ApnsPayloadBuilder();
-                payloadBuilder.setAlertBody("{}");
-                String payload = payloadBuilder.buildWithDefaultMaximumLength();
-                String token = TokenUtil.sanitizeTokenString(pushToken);
-
-                SimpleApnsPushNotification pushNotification = new SimpleApnsPushNotification(token, environmentVariables.get("PASS_TYPE_IDENTIFIER"), payload);
-                try {
-                    PushNotificationResponse<SimpleApnsPushNotification> pushNotificationResponse = apnsClient.sendNotification(pushNotification).get();
-                    if (pushNotificationResponse.isAccepted()) {
-                        LOG.info("Push notitification accepted by APNs gateway for username=[{}] pushToken=[{}]", username, pushToken);
-                    } else {
-                        LOG.error("Push notification rejected by the APNs gateway for username=[{}] pushToken=[{}]: {}", username, pushToken, pushNotificationResponse.getRejectionReason());
-                        if (pushNotificationResponse.getTokenInvalidationTimestamp() != null) {
-                            LOG.error("The token is invalid as of {}, removing from map.", pushNotificationResponse.getTokenInvalidationTimestamp());
-                            entriesToRemove.add(deviceRegistrationEntry.getKey());
-                        }
-                    }
-                } catch (InterruptedException e) {
-                    throw new RuntimeException("Error when sending push notifications", e);
-                } catch (ExecutionException e) {
-                    if (e.getCause() instanceof ClientNotConnectedException) {
-                        LOG.warn("Waiting for APNs client to reconnect");
-                        try {
-                            apnsClient.getReconnectionFuture().await();
-                        } catch (InterruptedException e1) {
-                            throw new RuntimeException("Error when reconnecting APNs client", e1);
-                        }
-                        LOG.info("APNs client reconnected after connection failure");
-                    }
+            CompletableFuture<Map<String, String>> peerUpdates = isFromCluster(request)
+                ? CompletableFuture.completedFuture(Collections.emptyMap())
+                : cluster.sendToAll(cluster.getPeers(), "GET", "/update", null, UPDATE_TIMEOUT_SECONDS);
+            Map<String, Object> pushedByNode = new HashMap<>();
+            pushedByNode.put(cluster.getNodeUrl(), pushUpdates());
+            for (Map.Entry<String, String> peerUpdate : peerUpdates.join().entrySet()) {
+                if (peerUpdate.getValue() == null) {
+                    pushedByNode.put(peerUpdate.getKey(), "failed");
+                } else {
+                    pushedByNode.putAll(objectMapper.readValue(peerUpdate.getValue(), new TypeReference<Map<String, Object>>() {
+                    }));
                 }
+            }
+            response.type("application/json");
+            return pushedByNode;
+        }, objectMapper::writeValueAsString);
+
+        /**
+         * Every cluster endpoint requires the cluster secret, since registrations include push tokens.
+         */
+        before("/cluster/*", (request, response) -> {
+            if (!isFromCluster(request)) {
+                LOG.warn("Rejecting {} {} without cluster secret", request.requestMethod(), request.uri());
+                halt(403);
+            }
+        });
+
+        get("/cluster/nodes", (request, response) -> {
+            response.type("application/json");
+            return cluster.getNodes();
+        }, objectMapper::writeValueAsString);
+
+        /**
+         * Replace the cluster membership when nodes join or leave. Unless the request came from another node, the new
+         * membership is passed on to every old and new node. Registrations this node no longer owns are handed off.
+         * Returns "updated" or "failed" per node, with status 502 if any node was not updated, so the caller can retry.
+         */
+        put("/cluster/nodes", (request, response) -> {
+            List<String> nodes = objectMapper.readValue(request.body(), new TypeReference<List<String>>() {
             });
-            entriesToRemove.forEach(entryToRemove -> usernameToRegistrationsMap.remove(entryToRemove));
+            Set<String> previousNodes = cluster.getNodes();
+            cluster.setNodes(nodes);
+            Map<String, String> updatedByNode = new HashMap<>();
+            updatedByNode.put(cluster.getNodeUrl(), "updated");
+            if (request.headers(Cluster.FORWARDED_HEADER) == null) {
+                Set<String> affectedNodes = new HashSet<>(previousNodes);
+                affectedNodes.addAll(cluster.getNodes());
+                cluster.sendToAll(affectedNodes, "PUT", "/cluster/nodes", request.body(), MEMBERSHIP_TIMEOUT_SECONDS).join()
+                    .forEach((node, nodeResponse) -> updatedByNode.put(node, nodeResponse == null ? "failed" : "updated"));
+            }
+            registrationShard.handOff();
+            if (updatedByNode.containsValue("failed")) {
+                LOG.error("Cluster membership not updated on every node: {}", updatedByNode);
+                response.status(502);
+            }
+            response.type("application/json");
+            return updatedByNode;
+        }, objectMapper::writeValueAsString);
+
+        get("/cluster/registrations", (request, response) -> {
+            response.type("application/json");
+            return registrationShard.getRegistrations();
+        }, objectMapper::writeValueAsString);
 
-            apnsClient.disconnect().await();
+        /**
+         * Receive registrations handed off by another node.
+         */
+        post("/cluster/registrations", (request, response) -> {
+            int receivedCount = registrationShard.receive(request.body());
+            LOG.info("Received [{}] registrations from node [{}]", receivedCount, request.headers(Cluster.FORWARDED_HEADER));
             return "";
         });
     }
 
+    private boolean isFromCluster(Request request) {
+        return cluster.isFromCluster(request.headers(Cluster.SECRET_HEADER));
+    }
+
+    /**
+     * Push updates for this node's registrations and return the number of accepted push notifications.
+     */
+    private int pushUpdates() throws Exception {
+        if (registrationShard.getRegistrations().isEmpty()) {
+            return 0;
+        }
+        InputStream base64EncodedPrivateKeyAndCertificatePkcs12AsStream = new ByteArrayInputStream(environmentVariables.get("PRIVATE_KEY_P12_BASE64").getBytes(StandardCharsets.UTF_8));
+        Base64InputStream privateKeyAndCertificatePkcs12AsStream = new Base64InputStream(base64EncodedPrivateKeyAndCertificatePkcs12AsStream);
+        String privateKeyPassphrase = environmentVariables.get("PRIVATE_KEY_PASSPHRASE");
+
+        ApnsClient<SimpleApnsPushNotification> apnsClient = new ApnsClient<>(privateKeyAndCertificatePkcs12AsStream, privateKeyPassphrase);
+//        Future<Void> connectFuture = apnsClient.connect(ApnsClient.DEVELOPMENT_APNS_HOST);
+        Future<Void> connectFuture = apnsClient.connect(ApnsClient.PRODUCTION_APNS_HOST);
+        connectFuture.await();
+
+        AtomicInteger acceptedCount = new AtomicInteger();
+        List<DeviceRegistration> registrationsToRemove = new ArrayList<>();
+        registrationShard.getRegistrations().forEach(deviceRegistration -> {
+            String username = deviceRegistration.getUsername();
+            String pushToken = deviceRegistration.getPushToken();
+            LOG.info("Pushing update for username=[{}] pushToken=[{}] passTypeIdentifier", username, pushToken, environmentVariables.get("PASS_TYPE_IDENTIFIER"));
+
+            ApnsPayloadBuilder payloadBuilder = new ApnsPayloadBuilder();
+            payloadBuilder.setAlertBody("{}");
+            String payload = payloadBuilder.buildWithDefaultMaximumLength();
+            String token = TokenUtil.sanitizeTokenString(pushToken);
+
+            SimpleApnsPushNotification pushNotification = new SimpleApnsPushNotification(token, environmentVariables.get("PASS_TYPE_IDENTIFIER"), payload);
+            try {
+                PushNotificationResponse<SimpleApnsPushNotification> pushNotificationResponse = apnsClient.sendNotification(pushNotification).get();
+                if (pushNotificationResponse.isAccepted()) {
+                    LOG.info("Push notitification accepted by APNs gateway for username=[{}] pushToken=[{}]", username, pushToken);
+                    acceptedCount.incrementAndGet();
+                } else {
+                    LOG.error("Push notification rejected by the APNs gateway for username=[{}] pushToken=[{}]: {}", username, pushToken, pushNotificationResponse.getRejectionReason());
+                    if (pushNotificationResponse.getTokenInvalidationTimestamp() != null) {
+                        LOG.error("The token is invalid as of {}, removing from map.", pushNotificationResponse.getTokenInvalidationTimestamp());
+                        registrationsToRemove.add(deviceRegistration);
+                    }
+                }
+            } catch (InterruptedException e) {
+                throw new RuntimeException("Error when sending push notifications", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof ClientNotConnectedException) {
+                    LOG.warn("Waiting for APNs client to reconnect");
+                    try {
+                        apnsClient.getReconnectionFuture().await();
+                    } catch (InterruptedException e1) {
+                        throw new RuntimeException("Error when reconnecting APNs client", e1);
+                    }
+                    LOG.info("APNs client reconnected after connection failure");
+                }
+            }
+        });
+        registrationsToRemove.forEach(registrationShard::remove);
+
+        apnsClient.disconnect().await();
+        return acceptedCount.get();
+    }
+
     private boolean supportsAppleWallet(UserAgent userAgent) {
         if (userAgent.getOperatingSystem().getDeviceType() == DeviceType.MOBILE
             && userAgent.getOperatingSystem().getGroup() == OperatingSystem.IOS
@@ -464,6 +608,40 @@ public class Main {
         });
     }
 
+    /**
+     * Use signer from 'PASS_SIGNER' environment variable, default is 'cms'.
+     * Use 'queue' to batch signatures requested concurrently and sign each batch on a fork-join pool with one thread
+     * per core, or 'jpasskit' to sign using jpasskit for comparison.
+     */
+    private static PassSigner createPassSigner(Map<String, String> env) throws Exception {
+        PKSigningInformation signingInformation = Pass.loadSigningInformation(env);
+        String passSignerName = env.getOrDefault("PASS_SIGNER", "cms");
+        LOG.info("Using passSigner=[{}]", passSignerName);
+        switch (passSignerName) {
+            case "cms":
+                return new CmsPassSigner(signingInformation);
+            case "queue":
+                return new ForkJoinPassSigner(new CmsPassSigner(signingInformation));
+            case "jpasskit":
+                return new JpasskitPassSigner(signingInformation);
+            default:
+                throw new IllegalArgumentException("Invalid PASS_SIGNER=[" + passSignerName + "]");
+        }
+    }
+
+    /**
+     * Use comma separated node URLs from 'CLUSTER_NODES' environment variable, default is this node only.
+     * This node's URL is read from 'CLUSTER_NODE_URL', default is this host and port, and must be one of the nodes.
+     * Nodes authenticate to each other with the 'CLUSTER_SECRET' environment variable, required for more than one node.
+     */
+    private Cluster createCluster(Map<String, String> env, int port) throws UnknownHostException {
+        String nodeUrl = env.getOrDefault("CLUSTER_NODE_URL", "http://" + InetAddress.getLocalHost().getHostAddress() + ":" + port);
+        List<String> nodeUrls = env.containsKey("CLUSTER_NODES")
+            ? Arrays.asList(env.get("CLUSTER_NODES").split("\\s*,\\s*"))
+            : Collections.singletonList(nodeUrl);
+        return new Cluster(nodeUrl, nodeUrls, env.get("CLUSTER_SECRET"));
+    }
+
     /**
      * Use port from 'PORT' environment variable, default is 4567.
      * Specify port 0 for a randomly assigned port.
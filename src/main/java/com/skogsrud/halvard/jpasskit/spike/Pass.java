@@ -7,7 +7,6 @@ import de.brendamour.jpasskit.PKPass;
 import de.brendamour.jpasskit.enums.PKBarcodeFormat;
 import de.brendamour.jpasskit.enums.PKDateStyle;
 import de.brendamour.jpasskit.passes.PKEventTicket;
-import de.brendamour.jpasskit.signing.PKInMemorySigningUtil;
 import de.brendamour.jpasskit.signing.PKPassTemplateInMemory;
 import de.brendamour.jpasskit.signing.PKSigningException;
 import de.brendamour.jpasskit.signing.PKSigningInformation;
@@ -44,19 +43,26 @@ class Pass {
         .appendOffsetId()
         .toFormatter();
     private final ObjectMapper objectMapper;
+    private final PassSigner passSigner;
 
-    Pass() {
+    Pass(PassSigner passSigner) {
         objectMapper = new ObjectMapper(); // use different ObjectMapper instance for pass creation since jpasskit registers JsonFilters
+        this.passSigner = passSigner;
     }
 
-    byte[] createPassAsByteArray(Map<String, String> environmentVariables, int port) throws IOException, GeneralSecurityException, PKSigningException {
-        InputStream appleWwdrcaAsStream = getClass().getClassLoader().getResourceAsStream("AppleWWDRCA.pem");
+    /**
+     * Load the Pass Type ID private key and certificate once, rather than for every pass.
+     */
+    static PKSigningInformation loadSigningInformation(Map<String, String> environmentVariables) throws IOException, GeneralSecurityException, PKSigningException {
+        InputStream appleWwdrcaAsStream = Pass.class.getClassLoader().getResourceAsStream("AppleWWDRCA.pem");
         InputStream base64EncodedPrivateKeyAndCertificatePkcs12AsStream = new ByteArrayInputStream(environmentVariables.get("PRIVATE_KEY_P12_BASE64").getBytes(StandardCharsets.UTF_8));
         Base64InputStream privateKeyAndCertificatePkcs12AsStream = new Base64InputStream(base64EncodedPrivateKeyAndCertificatePkcs12AsStream);
         String privateKeyPassphrase = environmentVariables.get("PRIVATE_KEY_PASSPHRASE");
-        PKSigningInformation pkSigningInformation = new PKSigningInformationUtil()
+        return new PKSigningInformationUtil()
             .loadSigningInformationFromPKCS12AndIntermediateCertificate(privateKeyAndCertificatePkcs12AsStream, privateKeyPassphrase, appleWwdrcaAsStream);
+    }
 
+    byte[] createPassAsByteArray(Map<String, String> environmentVariables, int port) throws IOException, GeneralSecurityException, PKSigningException {
         PKPass pass = new PKPass();
         pass.setFormatVersion(1);
         pass.setPassTypeIdentifier(environmentVariables.get("PASS_TYPE_IDENTIFIER"));
@@ -122,6 +128,6 @@ class Pass {
             passTemplate.addFile(templateFile, getClass().getClassLoader().getResourceAsStream("passtemplate/" + templateFile));
         }
 
-        return new PKInMemorySigningUtil(objectMapper).createSignedAndZippedPkPassArchive(pass, passTemplate, pkSigningInformation);
+        return new SignedPassArchiver(objectMapper, passSigner).createSignedAndZippedPkPassArchive(pass, passTemplate, passSigner.getSigningInformation());
     }
 }
@@ -0,0 +1,34 @@
+package com.skogsrud.halvard.jpasskit.spike;
+
+import de.brendamour.jpasskit.signing.PKSigningException;
+import de.brendamour.jpasskit.signing.PKSigningInformation;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Creates the detached PKCS #7 signature over a pass <code>manifest.json</code>.
+ */
+interface PassSigner extends AutoCloseable {
+    byte[] sign(byte[] manifestJson) throws PKSigningException;
+
+    /**
+     * Sign several manifests, returning the signatures in the same order.
+     */
+    default List<byte[]> signAll(List<byte[]> manifestJsons) throws PKSigningException {
+        List<byte[]> signatures = new ArrayList<>(manifestJsons.size());
+        for (byte[] manifestJson : manifestJsons) {
+            signatures.add(sign(manifestJson));
+        }
+        return signatures;
+    }
+
+    PKSigningInformation getSigningInformation();
+
+    /**
+     * Release any threads held by the signer.
+     */
+    @Override
+    default void close() {
+    }
+}
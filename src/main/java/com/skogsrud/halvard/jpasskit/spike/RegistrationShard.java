@@ -0,0 +1,118 @@
+package com.skogsrud.halvard.jpasskit.spike;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import okhttp3.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+/**
+ * The device registrations owned by this node, keyed by deviceLibraryIdentifier and serialNumber.
+ */
+class RegistrationShard {
+    private static final Logger LOG = LoggerFactory.getLogger(RegistrationShard.class);
+    private static final long HAND_OFF_RETRY_DELAY_SECONDS = 10;
+
+    private final Cluster cluster;
+    private final ObjectMapper objectMapper;
+    private final ConcurrentHashMap<String, DeviceRegistration> registrations = new ConcurrentHashMap<>();
+    private final AtomicBoolean handOffRetryScheduled = new AtomicBoolean();
+    private final ScheduledExecutorService handOffRetryExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "registration-hand-off");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    RegistrationShard(Cluster cluster, ObjectMapper objectMapper) {
+        this.cluster = cluster;
+        this.objectMapper = objectMapper;
+    }
+
+    /**
+     * Add or replace a registration. Returns true if the device was not already registered for the pass.
+     */
+    boolean register(DeviceRegistration registration) {
+        return registrations.put(key(registration), registration) == null;
+    }
+
+    void unregister(String deviceLibraryIdentifier, String serialNumber) {
+        registrations.remove(DeviceRegistration.key(deviceLibraryIdentifier, serialNumber));
+    }
+
+    /**
+     * Remove a registration, unless it has been replaced since it was read.
+     */
+    void remove(DeviceRegistration registration) {
+        registrations.remove(key(registration), registration);
+    }
+
+    Collection<DeviceRegistration> getRegistrations() {
+        return Collections.unmodifiableCollection(registrations.values());
+    }
+
+    /**
+     * Add registrations handed off by another node. A registration received here directly is newer, so it is kept.
+     */
+    int receive(String registrationsJson) throws IOException {
+        List<Map<String, String>> receivedRegistrations = objectMapper.readValue(registrationsJson, new TypeReference<List<Map<String, String>>>() {
+        });
+        receivedRegistrations.forEach(registration -> {
+            DeviceRegistration deviceRegistration = new DeviceRegistration(registration.get("username"),
+                registration.get("deviceLibraryIdentifier"), registration.get("serialNumber"), registration.get("pushToken"));
+            registrations.putIfAbsent(key(deviceRegistration), deviceRegistration);
+        });
+        return receivedRegistrations.size();
+    }
+
+    /**
+     * Send registrations for deviceLibraryIdentifiers owned by other nodes to their owners, and remove them here.
+     * Registrations that could not be handed off stay here, and are retried until they are.
+     */
+    synchronized void handOff() {
+        Map<String, List<DeviceRegistration>> registrationsByOwner = registrations.values().stream()
+            .filter(registration -> !cluster.owns(registration.getDeviceLibraryIdentifier()))
+            .collect(Collectors.groupingBy(registration -> cluster.ownerOf(registration.getDeviceLibraryIdentifier())));
+        List<String> failedOwners = new ArrayList<>();
+        registrationsByOwner.forEach((owner, ownerRegistrations) -> {
+            try {
+                Response response = cluster.send(owner, "POST", "/cluster/registrations", null, objectMapper.writeValueAsString(ownerRegistrations));
+                response.body().close();
+                if (response.isSuccessful()) {
+                    ownerRegistrations.forEach(this::remove);
+                    LOG.info("Handed off [{}] registrations to node [{}]", ownerRegistrations.size(), owner);
+                } else {
+                    LOG.error("Node [{}] returned statusCode=[{}] when handing off [{}] registrations", owner, response.code(), ownerRegistrations.size());
+                    failedOwners.add(owner);
+                }
+            } catch (IOException e) {
+                LOG.error("Error when handing off [{}] registrations to node [{}]", ownerRegistrations.size(), owner, e);
+                failedOwners.add(owner);
+            }
+        });
+        if (!failedOwners.isEmpty() && handOffRetryScheduled.compareAndSet(false, true)) {
+            LOG.warn("Retrying hand off to nodes {} in {} seconds", failedOwners, HAND_OFF_RETRY_DELAY_SECONDS);
+            handOffRetryExecutor.schedule(() -> {
+                handOffRetryScheduled.set(false);
+                handOff();
+            }, HAND_OFF_RETRY_DELAY_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    private static String key(DeviceRegistration registration) {
+        return DeviceRegistration.key(registration.getDeviceLibraryIdentifier(), registration.getSerialNumber());
+    }
+}
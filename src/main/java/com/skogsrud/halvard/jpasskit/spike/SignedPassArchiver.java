@@ -0,0 +1,78 @@
+package com.skogsrud.halvard.jpasskit.spike;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import de.brendamour.jpasskit.PKPass;
+import de.brendamour.jpasskit.signing.IPKPassTemplate;
+import de.brendamour.jpasskit.signing.PKAbstractSIgningUtil;
+import de.brendamour.jpasskit.signing.PKSigningException;
+import de.brendamour.jpasskit.signing.PKSigningInformation;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Creates the same <code>*.pkpass</code> archive as jpasskit's <code>PKInMemorySigningUtil</code>, which is final,
+ * but signs <code>manifest.json</code> using a {@link PassSigner}.
+ */
+final class SignedPassArchiver extends PKAbstractSIgningUtil {
+    private final ObjectWriter objectWriter;
+    private final PassSigner passSigner;
+
+    SignedPassArchiver(ObjectMapper objectMapper, PassSigner passSigner) {
+        objectWriter = configureObjectMapper(objectMapper);
+        this.passSigner = passSigner;
+    }
+
+    @Override
+    public byte[] createSignedAndZippedPkPassArchive(PKPass pass, IPKPassTemplate passTemplate, PKSigningInformation signingInformation) throws PKSigningException {
+        Map<String, ByteBuffer> allFiles;
+        try {
+            allFiles = new HashMap<>(passTemplate.getAllFiles());
+            allFiles.put("pass.json", ByteBuffer.wrap(objectWriter.writeValueAsBytes(pass)));
+        } catch (IOException e) {
+            throw new PKSigningException("Error when creating pass.json", e);
+        }
+        byte[] manifestJson = createManifestJson(allFiles);
+        allFiles.put("manifest.json", ByteBuffer.wrap(manifestJson));
+        allFiles.put("signature", ByteBuffer.wrap(signManifestFile(manifestJson, signingInformation)));
+        return zip(allFiles);
+    }
+
+    /**
+     * The signing information is held by the {@link PassSigner}, so the argument is ignored.
+     */
+    @Override
+    public byte[] signManifestFile(byte[] manifestJson, PKSigningInformation signingInformation) throws PKSigningException {
+        return passSigner.sign(manifestJson);
+    }
+
+    private byte[] createManifestJson(Map<String, ByteBuffer> files) throws PKSigningException {
+        Map<String, String> fileHashes = new HashMap<>();
+        files.forEach((fileName, content) -> fileHashes.put(fileName, DigestUtils.sha1Hex(content.array()))); // Wallet requires SHA-1 file hashes
+        try {
+            return objectWriter.writeValueAsBytes(fileHashes);
+        } catch (IOException e) {
+            throw new PKSigningException("Error when creating manifest.json", e);
+        }
+    }
+
+    private byte[] zip(Map<String, ByteBuffer> files) throws PKSigningException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        try (ZipOutputStream zipOutputStream = new ZipOutputStream(byteArrayOutputStream)) {
+            for (Map.Entry<String, ByteBuffer> file : files.entrySet()) {
+                zipOutputStream.putNextEntry(new ZipEntry(getRelativePathOfZipEntry(file.getKey(), "")));
+                zipOutputStream.write(file.getValue().array());
+            }
+        } catch (IOException e) {
+            throw new PKSigningException("Error when zipping file", e);
+        }
+        return byteArrayOutputStream.toByteArray();
+    }
+}
@@ -0,0 +1,321 @@
+package com.skogsrud.halvard.jpasskit.spike;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import okhttp3.Headers;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+
+/**
+ * Starts several nodes on localhost, each in its own JVM since Spark runs one server per JVM.
+ * Nodes A and B forward requests for devices they do not own, node C redirects them, and node D joins and leaves.
+ */
+public class ClusterTest {
+    private static final String PASS_TYPE_IDENTIFIER = "pass.com.apple.devpubs.example";
+    private static final String SECRET = "cluster-test-secret";
+    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+    private static final String AUTHORIZATION = "ApplePass " + Base64.getEncoder().encodeToString("01234567890:password".getBytes(StandardCharsets.ISO_8859_1));
+    private static final OkHttpClient HTTP_CLIENT = new OkHttpClient.Builder().followRedirects(false).build();
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private static final List<Process> processes = new ArrayList<>();
+    private static String nodeA;
+    private static String nodeB;
+    private static String nodeC;
+    private static String nodeD;
+    private static List<String> nodes;
+
+    private final List<String> registeredDeviceLibraryIdentifiers = new ArrayList<>();
+
+    @BeforeClass
+    public static void startNodes() throws Exception {
+        nodeA = "http://localhost:" + freePort();
+        nodeB = "http://localhost:" + freePort();
+        nodeC = "http://localhost:" + freePort();
+        nodeD = "http://localhost:" + freePort();
+        nodes = Arrays.asList(nodeA, nodeB, nodeC);
+        String clusterNodes = String.join(",", nodes);
+        startNode(nodeA, clusterNodes, "forward");
+        startNode(nodeB, clusterNodes, "forward");
+        startNode(nodeC, clusterNodes, "redirect");
+        startNode(nodeD, clusterNodes + "," + nodeD, "forward");
+        for (String node : Arrays.asList(nodeA, nodeB, nodeC, nodeD)) {
+            awaitNode(node);
+        }
+    }
+
+    @AfterClass
+    public static void stopNodes() {
+        processes.forEach(Process::destroy);
+    }
+
+    @After
+    public void unregisterDevices() throws Exception {
+        for (String deviceLibraryIdentifier : registeredDeviceLibraryIdentifiers) {
+            send(nodeA, "DELETE", registrationPath(deviceLibraryIdentifier), AUTHORIZATION, null, null);
+        }
+    }
+
+    @Test
+    public void registrationIsForwardedToOwner() throws Exception {
+        String deviceLibraryIdentifier = deviceLibraryIdentifierOwnedBy(nodeB, nodes);
+        assertThat(register(nodeA, deviceLibraryIdentifier), is(201));
+        assertThat(register(nodeA, deviceLibraryIdentifier), is(200));
+        assertThat(registeredDevices(nodeB), containsInAnyOrder(deviceLibraryIdentifier));
+        assertThat(registeredDevices(nodeA), is(empty()));
+    }
+
+    @Test
+    public void registrationIsRedirectedToOwnerWithHint() throws Exception {
+        String deviceLibraryIdentifier = deviceLibraryIdentifierOwnedBy(nodeA, nodes);
+        NodeResponse response = send(nodeC, "POST", registrationPath(deviceLibraryIdentifier), AUTHORIZATION, null, "{\"pushToken\":\"token\"}");
+        assertThat(response.code, is(307));
+        assertThat(response.headers.get("location"), is(nodeA + registrationPath(deviceLibraryIdentifier)));
+        assertThat(response.headers.get(Cluster.OWNER_HEADER), is(nodeA));
+        assertThat(registeredDevices(nodeC), is(empty()));
+    }
+
+    @Test
+    public void clusterEndpointsAndRoutingBypassRequireSecret() throws Exception {
+        assertThat(send(nodeA, "PUT", "/cluster/nodes", null, null, OBJECT_MAPPER.writeValueAsString(Arrays.asList(nodeA, "http://localhost:1"))).code, is(403));
+        assertThat(send(nodeA, "GET", "/cluster/registrations", null, "wrong-secret", null).code, is(403));
+        String deviceLibraryIdentifier = deviceLibraryIdentifierOwnedBy(nodeB, nodes);
+        // a forwarded header without the secret must not make node A keep a registration it does not own
+        Request request = new Request.Builder()
+            .url(nodeA + registrationPath(deviceLibraryIdentifier))
+            .header("authorization", AUTHORIZATION)
+            .header(Cluster.FORWARDED_HEADER, "http://localhost:1")
+            .post(RequestBody.create(JSON, "{\"pushToken\":\"token\"}"))
+            .build();
+        registeredDeviceLibraryIdentifiers.add(deviceLibraryIdentifier);
+        assertThat(HTTP_CLIENT.newCall(request).execute().code(), is(201));
+        assertThat(registeredDevices(nodeA), is(empty()));
+        assertThat(registeredDevices(nodeB), containsInAnyOrder(deviceLibraryIdentifier));
+        assertThat(clusterNodes(nodeA), containsInAnyOrder(nodes.toArray()));
+    }
+
+    @Test
+    public void registrationsMoveWhenNodesJoinAndLeave() throws Exception {
+        List<String> deviceLibraryIdentifiers = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            String deviceLibraryIdentifier = UUID.randomUUID().toString();
+            deviceLibraryIdentifiers.add(deviceLibraryIdentifier);
+            assertThat(register(nodeA, deviceLibraryIdentifier), is(201));
+        }
+        List<String> joinedNodes = new ArrayList<>(nodes);
+        joinedNodes.add(nodeD);
+        try {
+            setClusterNodes(nodeA, joinedNodes);
+            for (String node : joinedNodes) {
+                assertThat(clusterNodes(node), containsInAnyOrder(joinedNodes.toArray()));
+            }
+            assertRegistrationsAreOnOwners(deviceLibraryIdentifiers, joinedNodes);
+        } finally {
+            setClusterNodes(nodeB, nodes);
+        }
+        for (String node : joinedNodes) {
+            assertThat(clusterNodes(node), containsInAnyOrder(nodes.toArray()));
+        }
+        assertThat(registeredDevices(nodeD), is(empty()));
+        assertRegistrationsAreOnOwners(deviceLibraryIdentifiers, nodes);
+    }
+
+    @Test
+    public void registrationForwardedByNodeWithStaleMembershipReachesOwner() throws Exception {
+        List<String> joinedNodes = new ArrayList<>(nodes);
+        joinedNodes.add(nodeD);
+        String deviceLibraryIdentifier = deviceLibraryIdentifierOwnedBy(nodeD, joinedNodes);
+        while (!new ConsistentHashRing(nodes).nodeFor(deviceLibraryIdentifier).equals(nodeB)) {
+            deviceLibraryIdentifier = deviceLibraryIdentifierOwnedBy(nodeD, joinedNodes);
+        }
+        try {
+            // node A has not heard that node D joined yet, so it forwards to node B, which owned the device before
+            for (String node : Arrays.asList(nodeB, nodeC, nodeD)) {
+                setClusterNodesWithoutPropagation(node, joinedNodes);
+            }
+            assertThat(register(nodeA, deviceLibraryIdentifier), is(201));
+            assertThat(registeredDevices(nodeB), is(empty()));
+            assertThat(registeredDevices(nodeD), containsInAnyOrder(deviceLibraryIdentifier));
+        } finally {
+            setClusterNodes(nodeB, nodes);
+        }
+        assertThat(registeredDevices(nodeB), containsInAnyOrder(deviceLibraryIdentifier));
+    }
+
+    @Test
+    public void membershipChangeReportsNodesThatWereNotUpdated() throws Exception {
+        String unreachableNode = "http://localhost:" + freePort();
+        List<String> nodesWithUnreachableNode = new ArrayList<>(nodes);
+        nodesWithUnreachableNode.add(unreachableNode);
+        try {
+            NodeResponse response = send(nodeA, "PUT", "/cluster/nodes", null, SECRET, OBJECT_MAPPER.writeValueAsString(nodesWithUnreachableNode));
+            assertThat(response.code, is(502));
+            Map<String, String> updatedByNode = OBJECT_MAPPER.readValue(response.body, new TypeReference<Map<String, String>>() {
+            });
+            assertThat(updatedByNode.keySet(), containsInAnyOrder(nodesWithUnreachableNode.toArray()));
+            assertThat(updatedByNode.get(unreachableNode), is("failed"));
+            nodes.forEach(node -> assertThat(updatedByNode.get(node), is("updated")));
+        } finally {
+            // the unreachable node is still told that it left, so this reports it as failed too
+            assertThat(send(nodeA, "PUT", "/cluster/nodes", null, SECRET, OBJECT_MAPPER.writeValueAsString(nodes)).code, is(502));
+        }
+        for (String node : nodes) {
+            assertThat(clusterNodes(node), containsInAnyOrder(nodes.toArray()));
+        }
+    }
+
+    @Test
+    public void updateFansOutToEveryNode() throws Exception {
+        NodeResponse response = send(nodeB, "GET", "/update", null, null, null);
+        assertThat(response.code, is(200));
+        Map<String, Object> pushedByNode = OBJECT_MAPPER.readValue(response.body, new TypeReference<Map<String, Object>>() {
+        });
+        assertThat(pushedByNode.keySet(), containsInAnyOrder(nodes.toArray()));
+        pushedByNode.values().forEach(pushed -> assertThat(pushed, is(0)));
+    }
+
+    private void assertRegistrationsAreOnOwners(List<String> deviceLibraryIdentifiers, List<String> clusterNodes) throws Exception {
+        ConsistentHashRing ring = new ConsistentHashRing(clusterNodes);
+        for (String node : clusterNodes) {
+            List<String> expected = deviceLibraryIdentifiers.stream().filter(id -> ring.nodeFor(id).equals(node)).collect(Collectors.toList());
+            assertThat(node, new HashSet<>(registeredDevices(node)), is(new HashSet<>(expected)));
+        }
+    }
+
+    private int register(String node, String deviceLibraryIdentifier) throws IOException {
+        registeredDeviceLibraryIdentifiers.add(deviceLibraryIdentifier);
+        return send(node, "POST", registrationPath(deviceLibraryIdentifier), AUTHORIZATION, null, "{\"pushToken\":\"token\"}").code;
+    }
+
+    private List<String> registeredDevices(String node) throws IOException {
+        List<Map<String, String>> registrations = OBJECT_MAPPER.readValue(send(node, "GET", "/cluster/registrations", null, SECRET, null).body, new TypeReference<List<Map<String, String>>>() {
+        });
+        return registrations.stream().map(registration -> registration.get("deviceLibraryIdentifier")).collect(Collectors.toList());
+    }
+
+    private List<String> clusterNodes(String node) throws IOException {
+        return OBJECT_MAPPER.readValue(send(node, "GET", "/cluster/nodes", null, SECRET, null).body, new TypeReference<List<String>>() {
+        });
+    }
+
+    private void setClusterNodes(String node, List<String> clusterNodes) throws IOException {
+        assertThat(send(node, "PUT", "/cluster/nodes", null, SECRET, OBJECT_MAPPER.writeValueAsString(clusterNodes)).code, is(200));
+    }
+
+    private void setClusterNodesWithoutPropagation(String node, List<String> clusterNodes) throws IOException {
+        Request request = new Request.Builder()
+            .url(node + "/cluster/nodes")
+            .header(Cluster.SECRET_HEADER, SECRET)
+            .header(Cluster.FORWARDED_HEADER, node)
+            .put(RequestBody.create(JSON, OBJECT_MAPPER.writeValueAsString(clusterNodes)))
+            .build();
+        Response response = HTTP_CLIENT.newCall(request).execute();
+        response.body().close();
+        assertThat(response.code(), is(200));
+    }
+
+    private static String registrationPath(String deviceLibraryIdentifier) {
+        return "/wallet/v1/devices/" + deviceLibraryIdentifier + "/registrations/" + PASS_TYPE_IDENTIFIER + "/appointment";
+    }
+
+    private static String deviceLibraryIdentifierOwnedBy(String node, List<String> clusterNodes) {
+        ConsistentHashRing ring = new ConsistentHashRing(clusterNodes);
+        while (true) {
+            String deviceLibraryIdentifier = UUID.randomUUID().toString();
+            if (ring.nodeFor(deviceLibraryIdentifier).equals(node)) {
+                return deviceLibraryIdentifier;
+            }
+        }
+    }
+
+    private static NodeResponse send(String node, String method, String path, String authorization, String secret, String jsonBody) throws IOException {
+        Request.Builder requestBuilder = new Request.Builder()
+            .url(node + path)
+            .method(method, jsonBody == null ? null : RequestBody.create(JSON, jsonBody));
+        if (authorization != null) {
+            requestBuilder.header("authorization", authorization);
+        }
+        if (secret != null) {
+            requestBuilder.header(Cluster.SECRET_HEADER, secret);
+        }
+        Response response = HTTP_CLIENT.newCall(requestBuilder.build()).execute();
+        return new NodeResponse(response.code(), response.headers(), response.body().string());
+    }
+
+    private static class NodeResponse {
+        private final int code;
+        private final Headers headers;
+        private final String body;
+
+        private NodeResponse(int code, Headers headers, String body) {
+            this.code = code;
+            this.headers = headers;
+            this.body = body;
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            return serverSocket.getLocalPort();
+        }
+    }
+
+    private static void startNode(String node, String clusterNodes, String clusterRouting) throws IOException {
+        String port = node.substring(node.lastIndexOf(':') + 1);
+        ProcessBuilder processBuilder = new ProcessBuilder(
+            new File(System.getProperty("java.home"), "bin/java").getPath(),
+            "-cp", System.getProperty("java.class.path"),
+            ClusterTestNode.class.getName());
+        processBuilder.environment().put("PASS_TYPE_IDENTIFIER", PASS_TYPE_IDENTIFIER);
+        processBuilder.environment().put("TEAM_IDENTIFIER", "A93A5CM278");
+        processBuilder.environment().put("PORT", port);
+        processBuilder.environment().put("CLUSTER_NODES", clusterNodes);
+        processBuilder.environment().put("CLUSTER_NODE_URL", node);
+        processBuilder.environment().put("CLUSTER_ROUTING", clusterRouting);
+        processBuilder.environment().put("CLUSTER_SECRET", SECRET);
+        processBuilder.redirectErrorStream(true);
+        processBuilder.redirectOutput(new File(System.getProperty("java.io.tmpdir"), "cluster-test-node-" + port + ".log"));
+        processes.add(processBuilder.start());
+    }
+
+    private static void awaitNode(String node) throws Exception {
+        long deadline = System.currentTimeMillis() + 30000;
+        while (true) {
+            try {
+                if (send(node, "GET", "/hello.txt", null, null, null).code == 200) {
+                    return;
+                }
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IllegalStateException("Node [" + node + "] did not start", e);
+                }
+            }
+            Thread.sleep(200);
+        }
+    }
+}
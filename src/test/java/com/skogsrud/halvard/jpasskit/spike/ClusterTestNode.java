@@ -0,0 +1,13 @@
+package com.skogsrud.halvard.jpasskit.spike;
+
+import java.util.HashMap;
+
+/**
+ * Runs a node for {@link ClusterTest} in its own JVM, signing with a generated key instead of a Pass Type ID
+ * certificate.
+ */
+public class ClusterTestNode {
+    public static void main(String[] args) throws Exception {
+        new Main(new HashMap<>(System.getenv()), new CmsPassSigner(TestSigningInformation.create("RSA"))).run();
+    }
+}
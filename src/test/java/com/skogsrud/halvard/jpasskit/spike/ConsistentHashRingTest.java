@@ -0,0 +1,58 @@
+package com.skogsrud.halvard.jpasskit.spike;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.isOneOf;
+
+public class ConsistentHashRingTest {
+    private static final List<String> NODES = Arrays.asList("http://localhost:4567", "http://localhost:4568", "http://localhost:4569");
+    private static final String JOINING_NODE = "http://localhost:4570";
+    private static final List<String> DEVICE_LIBRARY_IDENTIFIERS = IntStream.range(0, 3000)
+        .mapToObj(i -> UUID.randomUUID().toString())
+        .collect(Collectors.toList());
+
+    @Test
+    public void ownerDoesNotDependOnNodeOrder() throws Exception {
+        ConsistentHashRing ring = new ConsistentHashRing(NODES);
+        ConsistentHashRing reversedRing = new ConsistentHashRing(Arrays.asList(NODES.get(2), NODES.get(1), NODES.get(0)));
+        DEVICE_LIBRARY_IDENTIFIERS.forEach(id -> assertThat(reversedRing.nodeFor(id), is(ring.nodeFor(id))));
+    }
+
+    @Test
+    public void everyNodeOwnsAShare() throws Exception {
+        ConsistentHashRing ring = new ConsistentHashRing(NODES);
+        Map<String, Integer> countsByNode = new HashMap<>();
+        DEVICE_LIBRARY_IDENTIFIERS.forEach(id -> countsByNode.merge(ring.nodeFor(id), 1, Integer::sum));
+        NODES.forEach(node -> assertThat(countsByNode.get(node), greaterThan(DEVICE_LIBRARY_IDENTIFIERS.size() / NODES.size() / 2)));
+    }
+
+    @Test
+    public void joiningNodeOnlyTakesKeys() throws Exception {
+        ConsistentHashRing ring = new ConsistentHashRing(NODES);
+        List<String> joinedNodes = new ArrayList<>(NODES);
+        joinedNodes.add(JOINING_NODE);
+        ConsistentHashRing joinedRing = new ConsistentHashRing(joinedNodes);
+        DEVICE_LIBRARY_IDENTIFIERS.forEach(id -> assertThat(joinedRing.nodeFor(id), isOneOf(ring.nodeFor(id), JOINING_NODE)));
+    }
+
+    @Test
+    public void leavingNodeOnlyGivesUpItsKeys() throws Exception {
+        ConsistentHashRing ring = new ConsistentHashRing(NODES);
+        ConsistentHashRing leftRing = new ConsistentHashRing(NODES.subList(0, 2));
+        DEVICE_LIBRARY_IDENTIFIERS.stream()
+            .filter(id -> !ring.nodeFor(id).equals(NODES.get(2)))
+            .forEach(id -> assertThat(leftRing.nodeFor(id), is(ring.nodeFor(id))));
+    }
+}
@@ -0,0 +1,62 @@
+package com.skogsrud.halvard.jpasskit.spike;
+
+import de.brendamour.jpasskit.signing.PKSigningInformation;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
+
+/**
+ * Compare signing throughput of each {@link PassSigner} the way the server uses them, with request threads each calling
+ * {@link PassSigner#sign(byte[])}. Every signer is measured with one request thread, and with one request thread per
+ * core unless a thread count is given after the key algorithm. Run with <code>./gradlew benchmarkSigning</code>.
+ */
+public class PassSignerBenchmark {
+    private static final int WARM_UP_SIGNATURE_COUNT = 200;
+    private static final int SIGNATURE_COUNT = 500;
+
+    public static void main(String[] args) throws Exception {
+        PKSigningInformation signingInformation = TestSigningInformation.create(args.length > 0 ? args[0] : "RSA");
+        List<byte[]> manifestJsons = new ArrayList<>(SIGNATURE_COUNT);
+        for (int i = 0; i < SIGNATURE_COUNT; i++) {
+            manifestJsons.add(("{\"pass.json\":\"" + i + "\"}").getBytes(StandardCharsets.UTF_8));
+        }
+        int concurrentRequestThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        try (PassSigner jpasskit = new JpasskitPassSigner(signingInformation);
+             PassSigner cms = new CmsPassSigner(signingInformation);
+             PassSigner queue = new ForkJoinPassSigner(new CmsPassSigner(signingInformation))) {
+            for (int requestThreads : IntStream.of(1, concurrentRequestThreads).distinct().toArray()) {
+                benchmark("jpasskit", jpasskit, manifestJsons, requestThreads);
+                benchmark("cms", cms, manifestJsons, requestThreads);
+                benchmark("queue", queue, manifestJsons, requestThreads);
+            }
+        }
+    }
+
+    private static void benchmark(String passSignerName, PassSigner passSigner, List<byte[]> manifestJsons, int requestThreads) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(requestThreads);
+        try {
+            signConcurrently(passSigner, manifestJsons.subList(0, WARM_UP_SIGNATURE_COUNT), executor);
+            long start = System.nanoTime();
+            signConcurrently(passSigner, manifestJsons, executor);
+            long elapsedNanos = System.nanoTime() - start;
+            System.out.println(String.format("passSigner=[%s] requestThreads=[%d] signatures=[%d] signaturesPerSecond=[%.1f]",
+                passSignerName, requestThreads, manifestJsons.size(), manifestJsons.size() * 1e9 / elapsedNanos));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void signConcurrently(PassSigner passSigner, List<byte[]> manifestJsons, ExecutorService executor) throws Exception {
+        List<Callable<byte[]>> requests = new ArrayList<>(manifestJsons.size());
+        manifestJsons.forEach(manifestJson -> requests.add(() -> passSigner.sign(manifestJson)));
+        for (Future<byte[]> signature : executor.invokeAll(requests)) {
+            signature.get();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.skogsrud.halvard.jpasskit.spike;
+
+import de.brendamour.jpasskit.signing.PKSigningException;
+import de.brendamour.jpasskit.signing.PKSigningInformation;
+import org.apache.commons.io.IOUtils;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasItems;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+
+public class PassSignerTest {
+    @Test
+    public void cmsSignatureVerifiesForRsaKey() throws Exception {
+        PKSigningInformation signingInformation = TestSigningInformation.create("RSA");
+        byte[] manifestJson = manifestJson(0);
+        byte[] signature = new CmsPassSigner(signingInformation).sign(manifestJson);
+        assertThat(verify(signingInformation, manifestJson, signature), is(true));
+    }
+
+    @Test
+    public void cmsSignatureVerifiesForEcKey() throws Exception {
+        PKSigningInformation signingInformation = TestSigningInformation.create("EC");
+        byte[] manifestJson = manifestJson(0);
+        byte[] signature = new CmsPassSigner(signingInformation).sign(manifestJson);
+        assertThat(verify(signingInformation, manifestJson, signature), is(true));
+    }
+
+    @Test
+    public void queueSignaturesVerifyInOrder() throws Exception {
+        PKSigningInformation signingInformation = TestSigningInformation.create("RSA");
+        List<byte[]> manifestJsons = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            manifestJsons.add(manifestJson(i));
+        }
+        try (PassSigner passSigner = new ForkJoinPassSigner(new CmsPassSigner(signingInformation), 4)) {
+            List<byte[]> signatures = passSigner.signAll(manifestJsons);
+            assertThat(signatures, hasSize(manifestJsons.size()));
+            for (int i = 0; i < manifestJsons.size(); i++) {
+                assertThat(verify(signingInformation, manifestJsons.get(i), signatures.get(i)), is(true));
+            }
+        }
+    }
+
+    @Test
+    public void queueBatchesSignaturesRequestedWhileSigning() throws Exception {
+        PKSigningInformation signingInformation = TestSigningInformation.create("RSA");
+        CmsPassSigner cmsPassSigner = new CmsPassSigner(signingInformation);
+        CountDownLatch firstSignatureStarted = new CountDownLatch(1);
+        CountDownLatch releaseFirstSignature = new CountDownLatch(1);
+        AtomicInteger signatureCount = new AtomicInteger();
+        PassSigner blockingPassSigner = new PassSigner() {
+            @Override
+            public byte[] sign(byte[] manifestJson) throws PKSigningException {
+                if (signatureCount.getAndIncrement() == 0) {
+                    firstSignatureStarted.countDown();
+                    try {
+                        releaseFirstSignature.await();
+                    } catch (InterruptedException e) {
+                        throw new PKSigningException("Interrupted", e);
+                    }
+                }
+                return cmsPassSigner.sign(manifestJson);
+            }
+
+            @Override
+            public PKSigningInformation getSigningInformation() {
+                return signingInformation;
+            }
+        };
+        ExecutorService requestThreads = Executors.newFixedThreadPool(4);
+        try (PassSigner passSigner = new ForkJoinPassSigner(blockingPassSigner, 4)) {
+            List<CompletableFuture<Boolean>> verified = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                byte[] manifestJson = manifestJson(i);
+                verified.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return verify(signingInformation, manifestJson, passSigner.sign(manifestJson));
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }, requestThreads));
+                if (i == 0) {
+                    assertThat(firstSignatureStarted.await(10, TimeUnit.SECONDS), is(true));
+                }
+            }
+            // the other requests wait for the next batch instead of taking the idle pool threads
+            Thread.sleep(200);
+            assertThat(signatureCount.get(), is(1));
+            releaseFirstSignature.countDown();
+            for (CompletableFuture<Boolean> future : verified) {
+                assertThat(future.get(10, TimeUnit.SECONDS), is(true));
+            }
+            assertThat(signatureCount.get(), is(4));
+        } finally {
+            requestThreads.shutdown();
+        }
+    }
+
+    @Test(expected = PKSigningException.class)
+    public void closedQueueRejectsSignatures() throws Exception {
+        PassSigner passSigner = new ForkJoinPassSigner(new CmsPassSigner(TestSigningInformation.create("RSA")), 1);
+        passSigner.close();
+        passSigner.sign(manifestJson(0));
+    }
+
+    @Test
+    public void passArchiveContainsSignedManifest() throws Exception {
+        PKSigningInformation signingInformation = TestSigningInformation.create("RSA");
+        Map<String, String> environmentVariables = new HashMap<String, String>() {{
+            put("PASS_TYPE_IDENTIFIER", "pass.com.apple.devpubs.example");
+            put("TEAM_IDENTIFIER", "A93A5CM278");
+            put("WEB_SERVICE_URL", "https://example.com/passes/");
+        }};
+        byte[] passAsByteArray = new Pass(new CmsPassSigner(signingInformation)).createPassAsByteArray(environmentVariables, 4567);
+        Map<String, byte[]> files = new HashMap<>();
+        try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(passAsByteArray))) {
+            for (ZipEntry entry = in.getNextEntry(); entry != null; entry = in.getNextEntry()) {
+                files.put(entry.getName(), IOUtils.toByteArray(in));
+            }
+        }
+        assertThat(files.keySet(), hasItems("pass.json", "manifest.json", "signature", "icon.png"));
+        assertThat(verify(signingInformation, files.get("manifest.json"), files.get("signature")), is(true));
+    }
+
+    private boolean verify(PKSigningInformation signingInformation, byte[] manifestJson, byte[] signature) throws Exception {
+        CMSSignedData signedData = new CMSSignedData(new CMSProcessableByteArray(manifestJson), signature);
+        SignerInformation signerInformation = signedData.getSignerInfos().getSigners().iterator().next();
+        return signerInformation.verify(new JcaSimpleSignerInfoVerifierBuilder().build(signingInformation.getSigningCert()));
+    }
+
+    private byte[] manifestJson(int serialNumber) {
+        return ("{\"pass.json\":\"" + serialNumber + "\"}").getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -25,7 +25,7 @@ public class PassTest {
             put("TEAM_IDENTIFIER", "A93A5CM278");
             put("WEB_SERVICE_URL", "https://example.com/passes/");
         }};
-        byte[] passAsByteArray = new Pass().createPassAsByteArray(environmentVariables, 4567);
+        byte[] passAsByteArray = new Pass(new CmsPassSigner(Pass.loadSigningInformation(environmentVariables))).createPassAsByteArray(environmentVariables, 4567);
         try (InputStream in = new ByteArrayInputStream(passAsByteArray);
              OutputStream out = new FileOutputStream("testpass.pkpass")) {
             IOUtils.copy(in, out);
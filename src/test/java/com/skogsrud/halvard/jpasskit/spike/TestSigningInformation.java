@@ -0,0 +1,43 @@
+package com.skogsrud.halvard.jpasskit.spike;
+
+import de.brendamour.jpasskit.signing.PKSigningInformation;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Date;
+
+/**
+ * Signing information with a key pair and self-signed certificate created when the test runs, so tests do not
+ * depend on certificates that expire. The certificate also stands in for the Apple WWDR intermediate certificate.
+ */
+final class TestSigningInformation {
+    private TestSigningInformation() {
+    }
+
+    static PKSigningInformation create(String keyAlgorithm) throws Exception {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance(keyAlgorithm);
+        keyPairGenerator.initialize("EC".equals(keyAlgorithm) ? 256 : 2048);
+        KeyPair keyPair = keyPairGenerator.generateKeyPair();
+        X500Name name = new X500Name("CN=Test Pass Type ID");
+        Instant now = Instant.now();
+        X509CertificateHolder certificateHolder = new JcaX509v3CertificateBuilder(
+            name,
+            BigInteger.valueOf(now.toEpochMilli()),
+            Date.from(now.minus(1, ChronoUnit.DAYS)),
+            Date.from(now.plus(1, ChronoUnit.DAYS)),
+            name,
+            keyPair.getPublic())
+            .build(new JcaContentSignerBuilder(CmsPassSigner.signatureAlgorithm(keyPair.getPrivate())).build(keyPair.getPrivate()));
+        X509Certificate certificate = new JcaX509CertificateConverter().getCertificate(certificateHolder);
+        return new PKSigningInformation(certificate, keyPair.getPrivate(), certificate);
+    }
+}